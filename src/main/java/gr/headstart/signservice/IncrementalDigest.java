@@ -0,0 +1,338 @@
+package gr.headstart.signservice;
+
+import org.bouncycastle.crypto.digests.SHA1Digest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of how far every file has already been copied out of the unsigned area and hashed.
+ * Measurement files are appended to during a shift, so when the source is found to have only
+ * grown (prefix unchanged) just the new bytes are copied, and hashing resumes from the length
+ * the intermediate SHA-1 state was taken at.
+ * <p>
+ * The append check is cheap regardless of the file size: the copy must not have been touched
+ * since it was last written (same size, modification time and file key), the source must still
+ * be the same file (same file key) and not shorter, and a small window at the start of the source
+ * and right before the previously copied length must match the copy. An edit in the middle of the
+ * source that keeps the same file cannot be seen this way; such a file only gets re-hashed from
+ * byte 0 when force_validation finds that the digest does not match the contents, or when its
+ * state is dropped.
+ * <p>
+ * The state of a file is persisted in the state directory once the file has grown after being
+ * signed, so a restart does not cost a full re-hash of the files that are being appended to.
+ * Files that are written once never get a state file. States whose source is gone or that have
+ * not been updated for a while are removed by {@link #removeStale(Path, long)}.
+ *
+ * @author KouziaMi
+ */
+class IncrementalDigest {
+    private static final Logger logger = Logger.getLogger(IncrementalDigest.class.getName());
+    private static final String STATE_SUFFIX = ".state";
+    private static final int STATE_VERSION = 1;
+    /**
+     * Size of the head and tail windows used to detect a pure append.
+     */
+    private static final int WINDOW = 4096;
+    /**
+     * Maximum number of files whose state is kept in memory.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    private final Path stateDirectory;
+    private final Map<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    IncrementalDigest(Path stateDirectory) {
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * Finds the offset from which the source has to be copied. When the source has only been
+     * appended to since the last copy, this is the length of the copy, otherwise the state of
+     * the file is dropped and the source has to be copied from byte 0.
+     *
+     * @param fileName
+     * @param source the file in the unsigned area
+     * @param copy the copy that gets signed
+     * @return the offset to copy from
+     */
+    long getAppendOffset(String fileName, Path source, Path copy) throws IOException {
+        State state = get(fileName);
+        if (state == null) {
+            return 0;
+        }
+        if (!Files.exists(copy)) {
+            forget(fileName);
+            return 0;
+        }
+        BasicFileAttributes copyAttrs = Files.readAttributes(copy, BasicFileAttributes.class);
+        BasicFileAttributes sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+        if (copyAttrs.size() != state.copiedLength
+                || copyAttrs.lastModifiedTime().toMillis() != state.copyModified
+                || !getKey(copyAttrs).equals(state.copyKey)
+                || !getKey(sourceAttrs).equals(state.sourceKey)
+                || sourceAttrs.size() < state.copiedLength
+                || !isPrefix(copy, source, state.copiedLength)) {
+            logger.log(Level.INFO, "File {0} was not just appended. It will be copied and hashed from the start", fileName);
+            forget(fileName);
+            return 0;
+        }
+        return state.copiedLength;
+    }
+
+    /**
+     * Records that the copy is in sync with the source
+     *
+     * @param fileName
+     * @param source
+     * @param copy
+     */
+    void copied(String fileName, Path source, Path copy) throws IOException {
+        State state = get(fileName);
+        if (state == null) {
+            state = new State(new SHA1Digest());
+            synchronized (states) {
+                states.put(fileName, state);
+            }
+        }
+        BasicFileAttributes copyAttrs = Files.readAttributes(copy, BasicFileAttributes.class);
+        state.copiedLength = copyAttrs.size();
+        state.copyModified = copyAttrs.lastModifiedTime().toMillis();
+        state.copyKey = getKey(copyAttrs);
+        state.sourceKey = getKey(Files.readAttributes(source, BasicFileAttributes.class));
+    }
+
+    /**
+     * Calculates the SHA-1 digest of the copy, hashing only the bytes appended since the last call.
+     *
+     * @param fileName
+     * @param copy
+     * @return the digest of the whole copy
+     */
+    byte[] digest(String fileName, Path copy) throws IOException {
+        State state = get(fileName);
+        if (state == null || state.digestedLength > Files.size(copy)) {
+            throw new IOException("File " + fileName + " has not been copied before hashing");
+        }
+        //only files that keep growing are worth a state file
+        boolean resumed = state.digestedLength > 0;
+        if (resumed) {
+            logger.log(Level.INFO, "File {0} was appended. Resuming digest from offset {1}",
+                    new Object[]{fileName, Long.toString(state.digestedLength)});
+        }
+
+        //hash into a copy, so that a failure halfway leaves the state as it was
+        SHA1Digest digest = new SHA1Digest(state.digest);
+        long length;
+        try (RandomAccessFile raf = new RandomAccessFile(copy.toFile(), "r")) {
+            length = raf.length();
+            raf.seek(state.digestedLength);
+            byte[] buffer = new byte[8192];
+            long remaining = length - state.digestedLength;
+            while (remaining > 0) {
+                int len = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len < 0) {
+                    throw new IOException("Unexpected end of file " + copy);
+                }
+                digest.update(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+        state.digest = digest;
+        state.digestedLength = length;
+        if (resumed) {
+            save(fileName, state);
+        }
+
+        SHA1Digest snapshot = new SHA1Digest(digest);
+        byte[] result = new byte[snapshot.getDigestSize()];
+        snapshot.doFinal(result, 0);
+        return result;
+    }
+
+    /**
+     * Drops the state of a file, so that it is copied and hashed from byte 0 the next time.
+     *
+     * @param fileName
+     */
+    void forget(String fileName) {
+        synchronized (states) {
+            states.remove(fileName);
+        }
+        try {
+            Files.deleteIfExists(getStatePath(fileName));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error while deleting the digest state of file " + fileName, ex);
+        }
+    }
+
+    /**
+     * Deletes the persisted states of files that are no longer in the source directory, and of
+     * files that have not been appended to for longer than the maximum age.
+     *
+     * @param sourceDirectory the unsigned area
+     * @param maxAge maximum age of a state file in millis
+     */
+    void removeStale(Path sourceDirectory, long maxAge) {
+        if (!Files.isDirectory(stateDirectory)) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - maxAge;
+        int removed = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(stateDirectory, "*" + STATE_SUFFIX + "*")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                boolean tmp = !name.endsWith(STATE_SUFFIX);
+                String fileName = name.substring(0, name.lastIndexOf(STATE_SUFFIX));
+                if (tmp || !Files.exists(sourceDirectory.resolve(fileName))
+                        || Files.getLastModifiedTime(path).toMillis() < oldest) {
+                    synchronized (states) {
+                        states.remove(fileName);
+                    }
+                    Files.deleteIfExists(path);
+                    removed++;
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error while removing stale digest states", ex);
+        }
+        if (removed > 0) {
+            logger.log(Level.INFO, "Removed {0} stale digest states", removed);
+        }
+    }
+
+    private State get(String fileName) {
+        synchronized (states) {
+            State state = states.get(fileName);
+            if (state != null) {
+                return state;
+            }
+        }
+        State state = load(fileName);
+        if (state != null) {
+            synchronized (states) {
+                states.put(fileName, state);
+            }
+        }
+        return state;
+    }
+
+    private Path getStatePath(String fileName) {
+        return stateDirectory.resolve(fileName + STATE_SUFFIX);
+    }
+
+    private State load(String fileName) {
+        Path path = getStatePath(fileName);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != STATE_VERSION) {
+                return null;
+            }
+            long copiedLength = in.readLong();
+            long copyModified = in.readLong();
+            String copyKey = in.readUTF();
+            String sourceKey = in.readUTF();
+            long digestedLength = in.readLong();
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+
+            State state = new State(new SHA1Digest(encoded));
+            state.copiedLength = copiedLength;
+            state.copyModified = copyModified;
+            state.copyKey = copyKey;
+            state.sourceKey = sourceKey;
+            state.digestedLength = digestedLength;
+            return state;
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Ignoring unreadable digest state of file " + fileName, ex);
+            return null;
+        }
+    }
+
+    private void save(String fileName, State state) {
+        Path path = getStatePath(fileName);
+        Path tmp = stateDirectory.resolve(fileName + STATE_SUFFIX + ".tmp");
+        try {
+            Files.createDirectories(stateDirectory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                byte[] encoded = state.digest.getEncodedState();
+                out.writeInt(STATE_VERSION);
+                out.writeLong(state.copiedLength);
+                out.writeLong(state.copyModified);
+                out.writeUTF(state.copyKey);
+                out.writeUTF(state.sourceKey);
+                out.writeLong(state.digestedLength);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            //the state in memory is still valid, only a restart will cost a full re-hash
+            logger.log(Level.WARNING, "Error while saving the digest state of file " + fileName, ex);
+        }
+    }
+
+    /**
+     * Identity of the file on disk (e.g. device and inode), empty when the file system has none
+     */
+    private static String getKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    /**
+     * Checks cheaply that the first bytes of the source are still the ones of the copy
+     */
+    private static boolean isPrefix(Path copy, Path source, long length) throws IOException {
+        try (RandomAccessFile copyRaf = new RandomAccessFile(copy.toFile(), "r");
+             RandomAccessFile sourceRaf = new RandomAccessFile(source.toFile(), "r")) {
+            long tail = Math.max(0, length - WINDOW);
+            return Arrays.equals(readWindow(copyRaf, 0, length), readWindow(sourceRaf, 0, length))
+                    && Arrays.equals(readWindow(copyRaf, tail, length), readWindow(sourceRaf, tail, length));
+        }
+    }
+
+    private static byte[] readWindow(RandomAccessFile raf, long from, long length) throws IOException {
+        byte[] window = new byte[(int) Math.min(WINDOW, length - from)];
+        raf.seek(from);
+        raf.readFully(window);
+        return window;
+    }
+
+    /**
+     * How far a file has been copied and hashed
+     */
+    private static final class State {
+        private SHA1Digest digest;
+        private long copiedLength;
+        private long copyModified;
+        private String copyKey;
+        private String sourceKey;
+        private long digestedLength;
+
+        private State(SHA1Digest digest) {
+            this.digest = digest;
+        }
+    }
+}
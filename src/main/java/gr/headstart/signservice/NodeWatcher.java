@@ -6,16 +6,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.cert.Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,17 +35,79 @@ import java.util.logging.Logger;
 
 public abstract class NodeWatcher implements Runnable {
     private static final Logger logger = Logger.getLogger(NodeWatcher.class.getName());
+    /**
+     * DER prefix of a SHA-1 DigestInfo. Signing it with NONEwithRSA followed by a SHA-1 digest
+     * gives exactly the same signature as SHA1withRSA over the file contents, while the digest
+     * itself can be kept in the signature store.
+     */
+    static final byte[] SHA1_DIGEST_INFO = new byte[]{
+        0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a, 0x05, 0x00, 0x04, 0x14};
     private SignServiceProperties props;
+    private final IncrementalDigest incrementalDigest;
+    private final RetryScheduler scheduler;
+    /**
+     * Whether a .sig file is written next to every signed file
+     */
+    private final boolean looseSignatures;
+    /**
+     * Consolidated signature log, null when only loose .sig files are written
+     */
+    private final SignatureStore signatureStore;
 
     public NodeWatcher(SignServiceProperties props) {
         this.props = props;
+        this.incrementalDigest = new IncrementalDigest(Paths.get(props.getDigestStatePath()));
+        if (props.getIncrementalSigning()) {
+            incrementalDigest.removeStale(Paths.get(props.getWatchPath() + getUnsignedPath()), props.getDigestStateMaxAge());
+        }
+        String output = props.getSignatureOutput();
+        this.looseSignatures = output.equals(SignServiceProperties.OUTPUT_LOOSE) || output.equals(SignServiceProperties.OUTPUT_BOTH);
+        if (output.equals(SignServiceProperties.OUTPUT_LOOSE)) {
+            this.signatureStore = null;
+        } else {
+            try {
+                this.signatureStore = new SignatureStore(Paths.get(props.getStorePath()), props.getStoreSegmentSize());
+            } catch (IOException ex) {
+                throw new RuntimeException("Signature store " + props.getStorePath() + " cannot be opened", ex);
+            }
+        }
+        this.scheduler = new RetryScheduler(props, new RetryScheduler.Task() {
+            @Override
+            public void process(String fileName) throws SignException {
+                byte[] digest = signFile(fileName);
+                if (NodeWatcher.this.props.getForceValidation()) {
+                    validateSignature(fileName, digest);
+                }
+            }
+
+            @Override
+            public void quarantine(String fileName, SignException cause, int attempts) {
+                quarantineFile(fileName, cause, attempts);
+            }
+
+            @Override
+            public String getVersion(String fileName) {
+                File f = new File(NodeWatcher.this.props.getWatchPath() + getUnsignedPath() + "/" + fileName);
+                return f.exists() ? f.length() + "@" + f.lastModified() : null;
+            }
+        });
     }
 
     protected abstract String getUnsignedPath();
 
     protected abstract String getCodepage();
 
-    protected abstract void validateCRC(String completeFileName, String fileName);
+    /**
+     * Validates the CRCs of the file contents. This runs over the whole copy, even when only a few
+     * bytes have been appended: measurements and their CRCs are kept in separate sections, so an
+     * appended CRC can refer to a measurement written long before, and the line at the previous
+     * length may have been cut in the middle when it was validated.
+     *
+     * @param completeFileName
+     * @param fileName
+     * @throws SignException with reason CRC_INVALID if the contents cannot be trusted
+     */
+    protected abstract void validateCRC(String completeFileName, String fileName) throws SignException;
 
     @Override
     public void run() {
@@ -62,10 +132,7 @@ public abstract class NodeWatcher implements Runnable {
                     String fileName = filePath.toString();
                     //Check the file to ensure it is not a signature file
                     if (!fileName.endsWith(".sig") && !filePath.toFile().isDirectory() && !fileName.contains("qt_temp")) {
-                        signFile(fileName);
-                        if (props.getForceValidation()) {
-                            validateSignature(fileName);
-                        }
+                        scheduler.submit(fileName);
                     }
                 }
 
@@ -83,6 +150,17 @@ public abstract class NodeWatcher implements Runnable {
         } catch (InterruptedException e) {
             logger.log(Level.WARNING, "RESWatcher interrupted. Closing");
         } finally {
+            //the store is closed after the workers, a worker that is still stuck gets an IOException from it
+            if (!scheduler.shutdown()) {
+                logger.log(Level.WARNING, "Some files were still being signed while closing");
+            }
+            if (signatureStore != null) {
+                try {
+                    signatureStore.close();
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Error while closing the signature store", ex);
+                }
+            }
             try {
                 watcher.close();
             } catch (Exception ex) {
@@ -95,99 +173,67 @@ public abstract class NodeWatcher implements Runnable {
      * Orchestrates the file signing procedure
      *
      * @param fileName
+     * @return the digest that was signed
+     * @throws SignException if the file could not be signed
      */
-    private void signFile(String fileName) {
+    private byte[] signFile(String fileName) throws SignException {
         String completeFileName = readFile(fileName);
         validateCRC(completeFileName, fileName);
-        createSignature(completeFileName);
+        return createSignature(completeFileName, fileName);
     }
 
     /**
      * Reads the contents of a file. We are using this in order to be ready that the file
      * update has finished and it ready to be processed. We copy the file to a new path
-     * where it will be hidden to the device user.
+     * where it will be hidden to the device user. When the file has only been appended to
+     * since the last copy, only the new bytes are copied.
      *
      * @param fileName
      * @return the complete filename of the copied file
+     * @throws SignException with reason TRANSIENT_IO if the file is not ready yet
      */
-    private String readFile(String fileName) {
+    private String readFile(String fileName) throws SignException {
         String completeFileName = props.getWatchPath() + "/" + fileName;
         String completeHiddenFileName = props.getWatchPath() + getUnsignedPath() + "/" + fileName;
+        //Check if the file is ready, if not the retry scheduler will try again later
+        if (!new File(completeHiddenFileName).canRead()) {
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "File " + fileName + " is not ready for reading");
+        }
+
         //copy the file into the res directory
-        BufferedInputStream copyBufin = null;
-        BufferedOutputStream copyBufout = null;
         try {
-            //Open a reader
-            File f = new File(completeHiddenFileName);
-
-            //Check if the file is ready
-            while (!f.canRead()) {
-                //if not wait for half a second
-                try {
-                    logger.log(Level.SEVERE, "Waiting for the file {0} to be ready for reading: ", fileName);
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    continue;
-                }
+            long offset = 0;
+            if (props.getIncrementalSigning()) {
+                offset = incrementalDigest.getAppendOffset(fileName, Paths.get(completeHiddenFileName), Paths.get(completeFileName));
             }
-
-            //Try to open the file 5 times every 500 millis
-            for (int i = 0; i < 5; i++) {
-                //if not wait for half a second
-                try {
-                    logger.log(Level.INFO, "Attempt {0} to open the file: {1}", new Object[]{i + 1, fileName});
-                    copyBufin = new BufferedInputStream(new FileInputStream(completeHiddenFileName));
-                    copyBufout = new BufferedOutputStream(new FileOutputStream(completeFileName));
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while (copyBufin.available() != 0) {
-                        len = copyBufin.read(buffer);
-                        copyBufout.write(buffer, 0, len);
-                    }
-                    break;
-                } catch (Exception e) {
-                    //close the stream if necessary first
-                    try {
-                        copyBufin.close();
-                        logger.log(Level.SEVERE, "Error while trying to open the inputstream for the file {0}", fileName);
-                    } catch (Exception ge) {
-                        logger.log(Level.SEVERE, "Error while trying to close the inputstream for the file {0}", fileName);
-                    }
-                    try {
-                        logger.log(Level.SEVERE, "Error while trying to open the file {0}. Waiting 500 millis", fileName);
-                        Thread.sleep(500);
-                    } catch (InterruptedException ie) {
-                        continue;
-                    }
-                }
-            }
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while copying file from unsigned area: " + fileName, ex);
-            return null;
-        } finally {
-            //close buffers to release the file
-            if (copyBufin != null) {
-                try {
-                    copyBufin.close();
-                } catch (IOException ex) {
+            FileInputStream copyFis = new FileInputStream(completeHiddenFileName);
+            copyFis.getChannel().position(offset);
+            try (BufferedInputStream copyBufin = new BufferedInputStream(copyFis);
+                 BufferedOutputStream copyBufout = new BufferedOutputStream(new FileOutputStream(completeFileName, offset > 0))) {
+                byte[] buffer = new byte[1024];
+                int len;
+                while ((len = copyBufin.read(buffer)) != -1) {
+                    copyBufout.write(buffer, 0, len);
                 }
             }
-            if (copyBufout != null) {
-                try {
-                    copyBufout.close();
-                } catch (IOException ex) {
-                }
+            if (props.getIncrementalSigning()) {
+                incrementalDigest.copied(fileName, Paths.get(completeHiddenFileName), Paths.get(completeFileName));
             }
+        } catch (IOException ex) {
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "Error while copying file from unsigned area: " + fileName, ex);
         }
         return completeFileName;
     }
 
     /**
-     * Creates the signature file
+     * Creates the signature file and/or appends the signature to the signature store
      *
      * @param completeFileName
+     * @param fileName
+     * @return the digest that was signed
+     * @throws SignException if the key cannot be used or the file cannot be signed
      */
-    private void createSignature(String completeFileName) {
+    private byte[] createSignature(String completeFileName, String fileName) throws SignException {
         //Read the private key
         PrivateKey privateKey = null;
         try {
@@ -196,95 +242,212 @@ public abstract class NodeWatcher implements Runnable {
             BufferedInputStream ksbufin = new BufferedInputStream(ksfis);
 
             ks.load(ksbufin, Certpass.getPass(props));
+            ksbufin.close();
 
             privateKey = (PrivateKey) ks.getKey(props.getCertAlias(), Certpass.getPass(props));
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while reading the private key", ex);
-            return;
+            throw new SignException(SignException.Reason.KEY_ERROR, "Error while reading the private key", ex);
         }
 
         //init a signature instance
         Signature dsa = null;
         try {
-            dsa = Signature.getInstance("SHA1withRSA", "BC");
+            dsa = Signature.getInstance("NONEwithRSA", "BC");
             dsa.initSign(privateKey);
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while initializing the signature", ex);
-            return;
+            throw new SignException(SignException.Reason.KEY_ERROR, "Error while initializing the signature", ex);
         }
 
-        //apply the signature
+        //apply the signature on the precomputed digest
+        byte[] digest;
         try {
-            FileInputStream fis = new FileInputStream(completeFileName);
-            BufferedInputStream bufin = new BufferedInputStream(fis);
-            byte[] buffer = new byte[1024];
-            int len;
-            while (bufin.available() != 0) {
-                len = bufin.read(buffer);
-                dsa.update(buffer, 0, len);
-            }
-
-            bufin.close();
+            digest = calculateDigest(completeFileName, fileName);
+            dsa.update(SHA1_DIGEST_INFO);
+            dsa.update(digest);
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while applying the signature", ex);
-            return;
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "Error while applying the signature", ex);
         }
 
         // write the signature hash
         try {
             byte[] realSig = dsa.sign();
 
-            FileOutputStream sigfos = new FileOutputStream(completeFileName + ".sig");
-            sigfos.write(realSig);
-            sigfos.close();
+            if (looseSignatures) {
+                FileOutputStream sigfos = new FileOutputStream(completeFileName + ".sig");
+                sigfos.write(realSig);
+                sigfos.close();
+            }
+            if (signatureStore != null) {
+                signatureStore.put(new SignatureStore.Entry(fileName, System.currentTimeMillis(), digest, realSig));
+            }
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while signature hash file", ex);
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "Error while writing signature hash file", ex);
+        }
+        return digest;
+    }
+
+    /**
+     * Calculates the SHA-1 digest of the file contents. With incremental signing only the
+     * bytes appended since the last signature are hashed.
+     *
+     * @param completeFileName
+     * @param fileName
+     * @return the digest
+     */
+    private byte[] calculateDigest(String completeFileName, String fileName) throws Exception {
+        if (props.getIncrementalSigning()) {
+            return incrementalDigest.digest(fileName, Paths.get(completeFileName));
         }
+        return calculateFullDigest(completeFileName);
     }
 
     /**
-     * Validates that the signature file is original.
+     * Calculates the SHA-1 digest of the whole file contents
+     *
+     * @param completeFileName
+     * @return the digest
+     */
+    private byte[] calculateFullDigest(String completeFileName) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        FileInputStream fis = new FileInputStream(completeFileName);
+        BufferedInputStream bufin = new BufferedInputStream(fis);
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = bufin.read(buffer)) != -1) {
+            md.update(buffer, 0, len);
+        }
+
+        bufin.close();
+        return md.digest();
+    }
+
+    /**
+     * Moves a file that cannot be signed to the quarantine path, next to a .reason file
+     * describing the failure. Both get a timestamp suffix, so earlier failures of the same file
+     * are kept. The unsigned copy and any signature are removed from the signed area so that
+     * they are never mistaken for valid output. If the file has disappeared from the unsigned
+     * area meanwhile, nothing is touched: the signed area may still hold a valid earlier version.
+     *
      * @param fileName
+     * @param cause
+     * @param attempts
      */
-    private void validateSignature(String fileName) {
+    private void quarantineFile(String fileName, SignException cause, int attempts) {
         String completeFileName = props.getWatchPath() + "/" + fileName;
+        Path hiddenFile = Paths.get(props.getWatchPath() + getUnsignedPath(), fileName);
+        Path quarantinePath = Paths.get(props.getQuarantinePath());
+        if (!Files.exists(hiddenFile)) {
+            logger.log(Level.WARNING, "File {0} cannot be quarantined, it does not exist anymore", fileName);
+            return;
+        }
+        incrementalDigest.forget(fileName);
+        Date time = new Date();
+        try {
+            Files.createDirectories(quarantinePath);
+            //a timestamp keeps earlier quarantined versions of the same file and their reasons
+            String stamp = fileName + "." + new SimpleDateFormat("yyyyMMddHHmmssSSS").format(time);
+            String quarantineName = stamp;
+            for (int i = 1; Files.exists(quarantinePath.resolve(quarantineName))
+                    || Files.exists(quarantinePath.resolve(quarantineName + ".reason")); i++) {
+                quarantineName = stamp + "-" + i;
+            }
+            Files.move(hiddenFile, quarantinePath.resolve(quarantineName));
+            Files.deleteIfExists(Paths.get(completeFileName));
+            Files.deleteIfExists(Paths.get(completeFileName + ".sig"));
+            if (signatureStore != null) {
+                signatureStore.remove(fileName);
+            }
+
+            StringWriter reason = new StringWriter();
+            PrintWriter writer = new PrintWriter(reason);
+            writer.println("reason=" + cause.getReason());
+            writer.println("attempts=" + attempts);
+            writer.println("file=" + fileName);
+            writer.println("time=" + time);
+            writer.println("message=" + cause.getMessage());
+            cause.printStackTrace(writer);
+            writer.close();
+            Files.write(quarantinePath.resolve(quarantineName + ".reason"), reason.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error while moving file " + fileName + " to quarantine", ex);
+            return;
+        }
+        logger.log(Level.WARNING, "File {0} moved to quarantine: {1}", new Object[]{fileName, cause.getReason()});
+    }
+
+    /**
+     * Validates that the signature file, or the signature kept in the signature store, is original.
+     * The signed file is read again from byte 0, so a digest resumed by incremental signing is
+     * checked against the actual contents as well. If the signature does not verify, the signature
+     * is removed and the state of the file is dropped, so that the retry copies, hashes and signs
+     * the file from byte 0.
+     * @param fileName
+     * @param digest the digest that was signed
+     * @throws SignException if the signature cannot be verified
+     */
+    private void validateSignature(String fileName, byte[] digest) throws SignException {
+        String completeFileName = props.getWatchPath() + "/" + fileName;
+        Certificate cer;
         try {
             KeyStore ks = KeyStore.getInstance("PKCS12");
             FileInputStream ksfis = new FileInputStream(props.getKeystoreFile());
             BufferedInputStream ksbufin = new BufferedInputStream(ksfis);
 
             ks.load(ksbufin, Certpass.getPass(props));
-            Certificate cer = ks.getCertificate(props.getCertAlias());
+            ksbufin.close();
+            cer = ks.getCertificate(props.getCertAlias());
+        } catch (Exception e) {
+            throw new SignException(SignException.Reason.KEY_ERROR, "Error while reading the certificate", e);
+        }
 
+        boolean verified;
+        try {
             // input the signature bytes
-            FileInputStream sigfis = new FileInputStream(completeFileName + ".sig");
-            byte[] sigToVerify = new byte[sigfis.available()];
-            sigfis.read(sigToVerify);
+            byte[] sigToVerify;
+            if (signatureStore != null) {
+                SignatureStore.Entry entry = signatureStore.get(fileName);
+                if (entry == null) {
+                    throw new Exception("Signature of " + fileName + " cannot be found in the signature store");
+                }
+                sigToVerify = entry.getSignature();
+            } else {
+                FileInputStream sigfis = new FileInputStream(completeFileName + ".sig");
+                sigToVerify = new byte[sigfis.available()];
+                sigfis.read(sigToVerify);
 
-            sigfis.close();
+                sigfis.close();
+            }
 
             // create a Signature object and initialize it with the public key
-            Signature sig = Signature.getInstance("SHA1withRSA", "BC");
+            Signature sig = Signature.getInstance("NONEwithRSA", "BC");
             sig.initVerify(cer);
 
-            // Update and verify the data
-            FileInputStream datafis = new FileInputStream(completeFileName);
-            BufferedInputStream bufin = new BufferedInputStream(datafis);
-
-            byte[] buffer = new byte[1024];
-            int len;
-            while (bufin.available() != 0) {
-                len = bufin.read(buffer);
-                sig.update(buffer, 0, len);
-            };
-            bufin.close();
-
-            if (!sig.verify(sigToVerify)) {
-                throw new Exception("Cannot verify signature");
+            // hash the data again and verify it
+            byte[] fullDigest = calculateFullDigest(completeFileName);
+            if (!MessageDigest.isEqual(fullDigest, digest)) {
+                throw new Exception("The signed digest of file " + fileName + " does not match its contents");
             }
+            sig.update(SHA1_DIGEST_INFO);
+            sig.update(fullDigest);
+            verified = sig.verify(sigToVerify);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Cannot verify data integrity ", e);
-            return;
+            verified = false;
+        }
+
+        if (!verified) {
+            incrementalDigest.forget(fileName);
+            try {
+                Files.deleteIfExists(Paths.get(completeFileName + ".sig"));
+                if (signatureStore != null) {
+                    signatureStore.remove(fileName);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Error while removing the invalid signature of file " + fileName, ex);
+            }
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "Cannot verify signature of file " + fileName
+                    + ". It will be signed again from the start");
         }
         logger.log(Level.INFO, "Validation successfull!!!");
     }
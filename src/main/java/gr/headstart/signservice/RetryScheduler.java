@@ -0,0 +1,217 @@
+package gr.headstart.signservice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Failure handling stage of the signing pipeline. Files are processed by a pool of workers.
+ * Failures are retried with exponential backoff by a timer thread, so that no worker ever sleeps
+ * waiting for a file. Devices keep writing while the watch events fire, so a file is only handed
+ * back to the task for quarantine when it has not changed between two failing attempts: right
+ * away for invalid CRCs, after the maximum attempts for transient errors. Key errors are retried
+ * but never quarantined, since they are not the fault of the file. A file that keeps changing
+ * while it keeps failing is still quarantined after {@value #ATTEMPTS_CAP_FACTOR} times the
+ * maximum attempts, so that a device writing garbage cannot keep it retrying forever. A failing file that no longer
+ * exists is dropped, since there is nothing left to retry or quarantine.
+ *
+ * @author KouziaMi
+ */
+public class RetryScheduler {
+    private static final Logger logger = Logger.getLogger(RetryScheduler.class.getName());
+    /**
+     * Multiple of the maximum attempts after which a file is quarantined even if it still changes
+     */
+    private static final int ATTEMPTS_CAP_FACTOR = 4;
+
+    /**
+     * The work done for every file
+     */
+    public interface Task {
+        void process(String fileName) throws SignException;
+
+        void quarantine(String fileName, SignException cause, int attempts);
+
+        /**
+         * @return a value that changes whenever the file is written, e.g. its size and modification time,
+         * null if the file does not exist
+         */
+        String getVersion(String fileName);
+    }
+
+    private final Task task;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    /**
+     * Files that are being processed or wait for a retry, mapped to whether a new
+     * modification arrived meanwhile and the file must be processed once more.
+     */
+    private final ConcurrentMap<String, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    public RetryScheduler(SignServiceProperties props, Task task) {
+        this(task, props.getWorkerThreads(), props.getRetryMaxAttempts(), props.getRetryInitialDelay(), props.getRetryMaxDelay());
+    }
+
+    RetryScheduler(Task task, int workerThreads, int maxAttempts, long initialDelay, long maxDelay) {
+        this.task = task;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Queues a file for processing. If the file is already queued or waiting for a retry
+     * it is only marked to be processed again, so events for the same file never overlap.
+     *
+     * @param fileName
+     */
+    public void submit(String fileName) {
+        while (true) {
+            Boolean rerun = inFlight.putIfAbsent(fileName, Boolean.FALSE);
+            if (rerun == null) {
+                execute(fileName, 1, null);
+                return;
+            }
+            if (rerun || inFlight.replace(fileName, Boolean.FALSE, Boolean.TRUE)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting files. Pending retries are dropped, the files remain in the unsigned area.
+     * Files that are being processed are given some time to finish, then the workers are interrupted.
+     *
+     * @return true if all workers have terminated
+     */
+    public boolean shutdown() {
+        timer.shutdownNow();
+        workers.shutdown();
+        try {
+            if (workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                return true;
+            }
+            workers.shutdownNow();
+            return workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param lastVersion version of the file at the previous failing attempt, null if there was none
+     */
+    private void execute(final String fileName, final int attempt, final String lastVersion) {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(fileName, attempt, lastVersion);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(fileName);
+            logger.log(Level.WARNING, "Service is closing. File {0} was not processed", fileName);
+        }
+    }
+
+    private void attempt(String fileName, int attempt, String lastVersion) {
+        try {
+            task.process(fileName);
+        } catch (SignException e) {
+            handleFailure(fileName, attempt, lastVersion, e);
+            return;
+        } catch (RuntimeException e) {
+            handleFailure(fileName, attempt, lastVersion, new SignException(SignException.Reason.TRANSIENT_IO, e.getMessage(), e));
+            return;
+        }
+        complete(fileName);
+    }
+
+    private void handleFailure(final String fileName, final int attempt, String lastVersion, SignException e) {
+        final String version = task.getVersion(fileName);
+        if (version == null) {
+            //e.g. renamed or deleted by the device, a later event brings it back if it reappears
+            logger.log(Level.WARNING, "File {0} failed ({1}: {2}) and does not exist anymore. Dropping it",
+                    new Object[]{fileName, e.getReason(), e.getMessage()});
+            complete(fileName);
+            return;
+        }
+        boolean unchanged = version.equals(lastVersion);
+        boolean retry;
+        switch (e.getReason()) {
+            case CRC_INVALID:
+                //the device may still be writing the value or its crc
+                retry = !unchanged && attempt < maxAttempts * ATTEMPTS_CAP_FACTOR;
+                break;
+            case KEY_ERROR:
+                retry = attempt < maxAttempts;
+                break;
+            default:
+                retry = attempt < maxAttempts || !unchanged && attempt < maxAttempts * ATTEMPTS_CAP_FACTOR;
+        }
+        if (retry) {
+            long delay = getDelay(attempt);
+            logger.log(Level.WARNING, "Attempt {0} for file {1} failed ({2}: {3}). Retrying in {4} millis",
+                    new Object[]{attempt, fileName, e.getReason(), e.getMessage(), Long.toString(delay)});
+            //the retry reads the latest contents anyway
+            inFlight.put(fileName, Boolean.FALSE);
+            try {
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(fileName, attempt + 1, version);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException re) {
+                inFlight.remove(fileName);
+            }
+            return;
+        }
+
+        if (e.getReason() == SignException.Reason.KEY_ERROR) {
+            logger.log(Level.SEVERE, "Giving up on file " + fileName + " after " + attempt
+                    + " attempts. The key cannot be used, file is left in the unsigned area", e);
+        } else {
+            logger.log(Level.SEVERE, "Quarantining file " + fileName + " after " + attempt + " attempts", e);
+            try {
+                task.quarantine(fileName, e, attempt);
+            } catch (RuntimeException qe) {
+                logger.log(Level.SEVERE, "Error while quarantining file " + fileName, qe);
+            }
+            //the file has been moved away, later modifications cannot be processed
+            inFlight.remove(fileName);
+            return;
+        }
+        complete(fileName);
+    }
+
+    /**
+     * Releases the file, or processes it once more if it was modified meanwhile
+     */
+    private void complete(String fileName) {
+        if (inFlight.remove(fileName, Boolean.FALSE)) {
+            return;
+        }
+        inFlight.replace(fileName, Boolean.FALSE);
+        execute(fileName, 1, null);
+    }
+
+    private long getDelay(int attempt) {
+        long delay = initialDelay << Math.min(attempt - 1, 30);
+        return delay > 0 && delay < maxDelay ? delay : maxDelay;
+    }
+}
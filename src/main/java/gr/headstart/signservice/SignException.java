@@ -0,0 +1,43 @@
+package gr.headstart.signservice;
+
+/**
+ * Failure while processing a file, classified so that the retry scheduler knows
+ * whether trying again can help.
+ *
+ * @author KouziaMi
+ */
+public class SignException extends Exception {
+
+    public enum Reason {
+        /**
+         * The file or the signature could not be read or written, probably because the
+         * device is still writing it. Worth retrying.
+         */
+        TRANSIENT_IO,
+        /**
+         * The file contents do not match their CRCs. Retrying will not help.
+         */
+        CRC_INVALID,
+        /**
+         * The keystore or the private key cannot be used. Not the fault of the file.
+         */
+        KEY_ERROR
+    }
+
+    private static final long serialVersionUID = -3146235818843329504L;
+    private final Reason reason;
+
+    public SignException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public SignException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
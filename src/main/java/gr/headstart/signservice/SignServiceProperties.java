@@ -13,6 +13,18 @@ import java.util.logging.Logger;
  */
 
 public class SignServiceProperties {
+    /**
+     * Signatures are written as a .sig file next to every signed file
+     */
+    public static final String OUTPUT_LOOSE = "loose";
+    /**
+     * Signatures are appended to the signature store only
+     */
+    public static final String OUTPUT_STORE = "store";
+    /**
+     * Signatures are appended to the signature store and written as .sig files as well
+     */
+    public static final String OUTPUT_BOTH = "both";
 
     private HierarchicalINIConfiguration properties;
 
@@ -33,6 +45,59 @@ public class SignServiceProperties {
         return Boolean.valueOf(properties.getString("generic.force_validation"));
     }
 
+    public boolean getIncrementalSigning() {
+        return Boolean.valueOf(properties.getString("generic.incremental_signing"));
+    }
+
+    public String getDigestStatePath() {
+        return properties.getString("generic.digest_state_path", getWatchPath() + "/digests");
+    }
+
+    public long getDigestStateMaxAge() {
+        return properties.getLong("generic.digest_state_max_age", 7L * 24 * 60 * 60 * 1000);
+    }
+
+    public int getWorkerThreads() {
+        return properties.getInt("generic.worker_threads", 1);
+    }
+
+    public String getQuarantinePath() {
+        return properties.getString("generic.quarantine_path", getWatchPath() + "/quarantine");
+    }
+
+    public int getRetryMaxAttempts() {
+        return properties.getInt("retry.max_attempts", 5);
+    }
+
+    public long getRetryInitialDelay() {
+        return properties.getLong("retry.initial_delay", 500);
+    }
+
+    public long getRetryMaxDelay() {
+        return properties.getLong("retry.max_delay", 60000);
+    }
+
+    public String getSignatureOutput() {
+        String output = properties.getString("store.output", OUTPUT_LOOSE);
+        switch (output) {
+            case OUTPUT_LOOSE:
+            case OUTPUT_STORE:
+            case OUTPUT_BOTH:
+                return output;
+            default:
+                throw new RuntimeException("Signature output " + output + " is not valid, use "
+                        + OUTPUT_LOOSE + ", " + OUTPUT_STORE + " or " + OUTPUT_BOTH);
+        }
+    }
+
+    public String getStorePath() {
+        return properties.getString("store.path", getWatchPath() + "/signatures");
+    }
+
+    public long getStoreSegmentSize() {
+        return properties.getLong("store.segment_size", 64L * 1024 * 1024);
+    }
+
     public String getKeystoreFile() {
         return properties.getString("keystore.file");
     }
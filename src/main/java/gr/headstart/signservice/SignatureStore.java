@@ -0,0 +1,534 @@
+package gr.headstart.signservice;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of signatures, used instead of one .sig file per signed file. Signatures are
+ * appended to segment files of a limited size. An in-memory index, rebuilt from the segments on
+ * startup, points every file name to its latest record. When most records of the sealed segments
+ * have been superseded, the sealed segments are compacted into a single one by a background
+ * thread, so that appends are not held up while the segments are rewritten. Removed signatures
+ * are kept as tombstones until no older segment can still hold a signature they hide.
+ * <p>
+ * Every record is written as: body length, CRC32 of the body and the body itself, which holds the
+ * record type, the file name, the timestamp, the digest and the signature. A torn record at the end
+ * of the last segment is truncated on startup. A record with a wrong CRC anywhere else is skipped
+ * using its length, while a sealed segment that cannot be read to its end stops the startup.
+ *
+ * @author KouziaMi
+ */
+public class SignatureStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(SignatureStore.class.getName());
+    private static final String SEGMENT_PREFIX = "signatures-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+    /**
+     * Length and CRC32 written before every record body
+     */
+    private static final int RECORD_HEADER = 8;
+    /**
+     * Returned by readRecord for a record whose CRC does not match
+     */
+    private static final byte[] CORRUPT = new byte[0];
+    /**
+     * Sealed segments are compacted when less than this part of their records is still live
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * A signature as it is kept in the store
+     */
+    public static final class Entry {
+        private final String fileName;
+        private final long timestamp;
+        private final byte[] digest;
+        private final byte[] signature;
+
+        public Entry(String fileName, long timestamp, byte[] digest, byte[] signature) {
+            this.fileName = fileName;
+            this.timestamp = timestamp;
+            this.digest = digest;
+            this.signature = signature;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        public byte[] getSignature() {
+            return signature;
+        }
+    }
+
+    /**
+     * Position of the latest record of a file
+     */
+    private static final class Location {
+        private final long segment;
+        private final long offset;
+        /**
+         * The latest record is a tombstone
+         */
+        private final boolean deleted;
+
+        private Location(long segment, long offset, boolean deleted) {
+            this.segment = segment;
+            this.offset = offset;
+            this.deleted = deleted;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final Map<String, Location> index = new HashMap<>();
+    /**
+     * Number of records in every segment, live or not
+     */
+    private final TreeMap<Long, Integer> records = new TreeMap<>();
+    /**
+     * Runs the compactions started by appends
+     */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "signature-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * Serializes compactions, the store itself is only locked while a compaction starts and ends
+     */
+    private final Object compactionLock = new Object();
+    private boolean compactionScheduled;
+    private long activeSegment;
+    private long activeSize;
+    private DataOutputStream out;
+
+    public SignatureStore(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    /**
+     * Appends the signature of a file. It replaces any earlier signature of the same file.
+     *
+     * @param entry
+     */
+    public synchronized void put(Entry entry) throws IOException {
+        append(PUT, entry);
+    }
+
+    /**
+     * Appends a tombstone, so that the file has no signature anymore
+     *
+     * @param fileName
+     */
+    public synchronized void remove(String fileName) throws IOException {
+        Location location = index.get(fileName);
+        if (location != null && !location.deleted) {
+            append(DELETE, new Entry(fileName, System.currentTimeMillis(), new byte[0], new byte[0]));
+        }
+    }
+
+    /**
+     * Looks up the latest signature of a file
+     *
+     * @param fileName
+     * @return the entry or null if the file has not been signed
+     */
+    public synchronized Entry get(String fileName) throws IOException {
+        Location location = index.get(fileName);
+        if (location == null || location.deleted) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(segmentPath(location.segment).toFile(), "r")) {
+            raf.seek(location.offset);
+            byte[] body = readRecord(raf);
+            if (body == null || body == CORRUPT) {
+                throw new IOException("Corrupted record for file " + fileName + " in segment " + location.segment);
+            }
+            return decode(body).entry;
+        }
+    }
+
+    /**
+     * Rewrites the live records of all sealed segments into a single segment and deletes
+     * the rest. The active segment is sealed first, so that every record it holds is
+     * compacted as well. The sealed segments are rewritten without holding the store lock,
+     * so signatures can be appended meanwhile. A record that has been superseded by then
+     * keeps pointing to its newer location.
+     * <p>
+     * The old segments are deleted only after the compacted one is in place, so a crash in
+     * between leaves them behind. Tombstones are therefore copied into the compacted segment,
+     * and only dropped when they already are in the oldest segment, where nothing older can
+     * bring the removed signature back.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Long> sealed;
+            Map<String, Location> live = new HashMap<>();
+            synchronized (this) {
+                checkOpen();
+                roll();
+                sealed = new ArrayList<>(records.headMap(activeSegment).keySet());
+                if (sealed.isEmpty()) {
+                    return;
+                }
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    if (entry.getValue().segment < activeSegment) {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            //the compacted records take the place of the newest sealed segment, so they are
+            //still older than the records of the active segment when the index is rebuilt
+            long target = sealed.get(sealed.size() - 1);
+            Path tmp = directory.resolve(SEGMENT_PREFIX + "compaction.tmp");
+            long oldest = sealed.get(0);
+            Map<String, Location> moved = new HashMap<>();
+            List<String> dropped = new ArrayList<>();
+            try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+                //DataOutputStream.size() is an int, the offsets of a large segment need a long
+                long compactedSize = 0;
+                for (long segment : sealed) {
+                    try (RandomAccessFile raf = new RandomAccessFile(segmentPath(segment).toFile(), "r")) {
+                        long offset = 0;
+                        byte[] body;
+                        while ((body = readRecord(raf)) != null) {
+                            if (body == CORRUPT) {
+                                //skipped on startup as well, nothing in the index points to it
+                                offset = raf.getFilePointer();
+                                continue;
+                            }
+                            Record record = decode(body);
+                            Location location = live.get(record.entry.getFileName());
+                            if (location != null && location.segment == segment && location.offset == offset) {
+                                if (location.deleted && segment == oldest) {
+                                    dropped.add(record.entry.getFileName());
+                                } else {
+                                    moved.put(record.entry.getFileName(), new Location(target, compactedSize, location.deleted));
+                                    writeRecord(compacted, body);
+                                    compactedSize += RECORD_HEADER + body.length;
+                                }
+                            }
+                            offset = raf.getFilePointer();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Files.deleteIfExists(tmp);
+                throw ex;
+            }
+
+            synchronized (this) {
+                Files.move(tmp, segmentPath(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                //files appended to or removed meanwhile already point to the active segments
+                for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                    if (index.get(entry.getKey()) == live.get(entry.getKey())) {
+                        index.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (String fileName : dropped) {
+                    if (index.get(fileName) == live.get(fileName)) {
+                        index.remove(fileName);
+                    }
+                }
+                for (long segment : sealed) {
+                    records.remove(segment);
+                    if (segment != target || moved.isEmpty()) {
+                        Files.deleteIfExists(segmentPath(segment));
+                    }
+                }
+                if (!moved.isEmpty()) {
+                    records.put(target, moved.size());
+                }
+            }
+            logger.log(Level.INFO, "Compacted {0} signature segments into {1} records",
+                    new Object[]{sealed.size(), moved.size()});
+        }
+    }
+
+    /**
+     * Waits for a running compaction to finish and closes the active segment
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(60, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "Signature store {0} is closing while a compaction is still running", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compaction of " + directory);
+        } finally {
+            synchronized (this) {
+                closeSegment();
+            }
+        }
+    }
+
+    private void append(byte type, Entry entry) throws IOException {
+        checkOpen();
+        if (activeSize >= segmentSize) {
+            roll();
+            if (!compactionScheduled && isCompactionNeeded()) {
+                scheduleCompaction();
+            }
+        }
+        byte[] body = encode(type, entry);
+        long offset = activeSize;
+        writeRecord(out, body);
+        out.flush();
+        activeSize += RECORD_HEADER + body.length;
+        records.put(activeSegment, records.get(activeSegment) + 1);
+        index.put(entry.getFileName(), new Location(activeSegment, offset, type == DELETE));
+    }
+
+    private void checkOpen() throws IOException {
+        if (out == null) {
+            throw new IOException("Signature store " + directory + " is closed");
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Seals the active segment and starts a new one
+     */
+    private void roll() throws IOException {
+        if (records.get(activeSegment) == 0) {
+            return;
+        }
+        closeSegment();
+        openSegment(activeSegment + 1);
+    }
+
+    private void scheduleCompaction() {
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        logger.log(Level.SEVERE, "Error while compacting the signature store " + directory, ex);
+                    } finally {
+                        synchronized (SignatureStore.this) {
+                            compactionScheduled = false;
+                            //segments sealed while compacting would otherwise wait for the next roll
+                            if (out != null && isCompactionNeeded()) {
+                                scheduleCompaction();
+                            }
+                        }
+                    }
+                }
+            });
+            compactionScheduled = true;
+        } catch (RejectedExecutionException e) {
+            //the store is closing, a later roll schedules the compaction again
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        int total = 0;
+        for (int count : records.headMap(activeSegment).values()) {
+            total += count;
+        }
+        int live = 0;
+        for (Location location : index.values()) {
+            if (location.segment < activeSegment) {
+                live++;
+            }
+        }
+        return total > 0 && live < total * COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Rebuilds the index from the segments, oldest first so that later records win
+     */
+    private void load() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+
+        long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        for (long segment : segments) {
+            int count = 0;
+            try (RandomAccessFile raf = new RandomAccessFile(segmentPath(segment).toFile(), segment == last ? "rw" : "r")) {
+                long offset = 0;
+                try {
+                    byte[] body;
+                    while ((body = readRecord(raf)) != null) {
+                        if (body == CORRUPT) {
+                            if (segment == last && raf.getFilePointer() == raf.length()) {
+                                throw new EOFException("Corrupted record at the end of the active segment");
+                            }
+                            logger.log(Level.SEVERE, "Skipping corrupted record at offset {0} of signature segment {1}",
+                                    new Object[]{Long.toString(offset), Long.toString(segment)});
+                        } else {
+                            Record record = decode(body);
+                            index.put(record.entry.getFileName(), new Location(segment, offset, record.type == DELETE));
+                        }
+                        count++;
+                        offset = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    if (segment != last) {
+                        throw new IOException("Signature segment " + segment + " cannot be read after offset " + offset, e);
+                    }
+                    //the service stopped while appending, the tail of the active segment is torn
+                    logger.log(Level.WARNING, "Truncating torn record at offset {0} of signature segment {1}",
+                            new Object[]{Long.toString(offset), Long.toString(segment)});
+                    raf.setLength(offset);
+                }
+            }
+            records.put(segment, count);
+        }
+        openSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1));
+        int signatures = 0;
+        for (Location location : index.values()) {
+            if (!location.deleted) {
+                signatures++;
+            }
+        }
+        logger.log(Level.INFO, "Loaded {0} signatures from {1} segments", new Object[]{signatures, records.size()});
+    }
+
+    private void openSegment(long segment) throws IOException {
+        Path path = segmentPath(segment);
+        long size = Files.exists(path) ? Files.size(path) : 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile(), true)));
+        activeSegment = segment;
+        activeSize = size;
+        if (!records.containsKey(segment)) {
+            records.put(segment, 0);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static void writeRecord(DataOutputStream stream, byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        stream.writeInt(body.length);
+        stream.writeInt((int) crc.getValue());
+        stream.write(body);
+    }
+
+    /**
+     * Reads the record at the current position
+     *
+     * @return the record body, CORRUPT if its CRC does not match (the position is then past the
+     *         record) or null at the end of the segment
+     * @throws EOFException if the record does not fit in the segment
+     */
+    private static byte[] readRecord(RandomAccessFile raf) throws IOException {
+        long remaining = raf.length() - raf.getFilePointer();
+        if (remaining == 0) {
+            return null;
+        }
+        if (remaining < RECORD_HEADER) {
+            throw new EOFException("Incomplete record header at offset " + raf.getFilePointer());
+        }
+        int length = raf.readInt();
+        int checksum = raf.readInt();
+        if (length <= 0 || length > remaining - RECORD_HEADER) {
+            throw new EOFException("Invalid record length " + length + " at offset " + (raf.getFilePointer() - RECORD_HEADER));
+        }
+        byte[] body = new byte[length];
+        raf.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == checksum ? body : CORRUPT;
+    }
+
+    private static byte[] encode(byte type, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(type);
+        data.writeUTF(entry.getFileName());
+        data.writeLong(entry.getTimestamp());
+        data.writeInt(entry.getDigest().length);
+        data.write(entry.getDigest());
+        data.writeInt(entry.getSignature().length);
+        data.write(entry.getSignature());
+        data.close();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] body) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = data.readByte();
+        String fileName = data.readUTF();
+        long timestamp = data.readLong();
+        byte[] digest = new byte[data.readInt()];
+        data.readFully(digest);
+        byte[] signature = new byte[data.readInt()];
+        data.readFully(signature);
+        return new Record(type, new Entry(fileName, timestamp, digest, signature));
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final Entry entry;
+
+        private Record(byte type, Entry entry) {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+}
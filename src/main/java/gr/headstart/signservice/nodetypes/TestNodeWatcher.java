@@ -1,6 +1,7 @@
 package gr.headstart.signservice.nodetypes;
 
 import gr.headstart.signservice.NodeWatcher;
+import gr.headstart.signservice.SignException;
 import gr.headstart.signservice.SignServiceProperties;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -33,7 +34,7 @@ public class TestNodeWatcher extends NodeWatcher {
     }
     
     @Override
-    public void validateCRC(String completeFileName, String fileName) {
+    public void validateCRC(String completeFileName, String fileName) throws SignException {
         //Read the file into a configuration object
         logger.log(Level.INFO, "Start validation for file: {0}", new Object[]{completeFileName});
         RESCollection measurements = new RESCollection();
@@ -43,7 +44,7 @@ public class TestNodeWatcher extends NodeWatcher {
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(completeFileName), getCodepage()));
             measurements.load(reader);
         } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error while loading measurements file: " + fileName, ex);
+            throw new SignException(SignException.Reason.TRANSIENT_IO, "Error while loading measurements file: " + fileName, ex);
         } finally {
             //close reader to release the file
             if (reader != null){
@@ -53,24 +54,21 @@ public class TestNodeWatcher extends NodeWatcher {
             }
         }
         //validate the CRC
-        try {
-            for (String key : measurements) {
-                String value = measurements.getMeasurement(key);
-                String crc = measurements.getCRC(key);
-                String calculatedCRC = getCRC(value);
-                //validate CRC for each key-value pair
-                if (crc != null) {
-                    if (!crc.equals(calculatedCRC)) {
-                        logger.log(Level.SEVERE, "Problem while validating crc. "
-                                + "Key: {0} Value: {1} Original CRC: {2} Calculated crc: {3}."
-                                + "Aborting file signing for file {4}", new Object[]{key, value, crc, calculatedCRC, completeFileName});
-                    }
-                } else {
-                    logger.log(Level.SEVERE, "Problem while validating crc: crc value cannot be found in the file. Probably the is incomplete");
-                }
+        for (String key : measurements) {
+            String value = measurements.getMeasurement(key);
+            String crc = measurements.getCRC(key);
+            String calculatedCRC = getCRC(value);
+            //validate CRC for each key-value pair
+            if (crc == null) {
+                //the device may still be writing the file, so this is worth a retry
+                throw new SignException(SignException.Reason.TRANSIENT_IO, "Problem while validating crc: crc value for key "
+                        + key + " cannot be found in the file. Probably the file is incomplete");
+            }
+            if (!crc.equals(calculatedCRC)) {
+                throw new SignException(SignException.Reason.CRC_INVALID, "Problem while validating crc. Key: " + key
+                        + " Value: " + value + " Original CRC: " + crc + " Calculated crc: " + calculatedCRC
+                        + ". Aborting file signing for file " + completeFileName);
             }
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Generic problem while validating crc", e);
         }
     }
         
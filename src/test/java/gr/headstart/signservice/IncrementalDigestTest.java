@@ -0,0 +1,219 @@
+package gr.headstart.signservice;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.Signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for incremental signing: append detection, persistence of the digest states and
+ * equivalence of the resumed signature with a signature over the whole file.
+ *
+ * @author KouziaMi
+ */
+public class IncrementalDigestTest {
+    private static final String FILE = "a.res";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+    private Path copy;
+    private Path states;
+
+    @Before
+    public void setUp() throws IOException {
+        source = folder.newFolder("unsigned").toPath().resolve(FILE);
+        copy = folder.newFolder("signed").toPath().resolve(FILE);
+        states = folder.getRoot().toPath().resolve("digests");
+    }
+
+    @Test
+    public void appendResumesFromCopiedLength() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        assertEquals(0, copy(digest));
+        assertArrayEquals(sha1(copy), digest.digest(FILE, copy));
+
+        append(source, "second line\n");
+        assertEquals(11, copy(digest));
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(copy));
+        assertArrayEquals(sha1(copy), digest.digest(FILE, copy));
+    }
+
+    @Test
+    public void truncatedSourceStartsOver() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+
+        write(source, "first\n");
+        assertEquals(0, digest.getAppendOffset(FILE, source, copy));
+    }
+
+    @Test
+    public void editedSourceStartsOver() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+
+        write(source, "FIRST line\nsecond line\n");
+        assertEquals(0, digest.getAppendOffset(FILE, source, copy));
+    }
+
+    @Test
+    public void modifiedCopyStartsOver() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+
+        append(source, "second line\n");
+        Files.setLastModifiedTime(copy, FileTime.fromMillis(Files.getLastModifiedTime(copy).toMillis() - 10000));
+        assertEquals(0, digest.getAppendOffset(FILE, source, copy));
+    }
+
+    @Test
+    public void replacedSourceStartsOver() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+
+        //a new file with the same prefix, written by the device after the old one was moved away
+        Path replacement = source.resolveSibling("replacement");
+        write(replacement, "first line\nsecond line\n");
+        Files.delete(source);
+        Files.move(replacement, source);
+        assertEquals(0, digest.getAppendOffset(FILE, source, copy));
+    }
+
+    @Test
+    public void stateSurvivesReload() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+        //a file that was signed once has no state on disk
+        assertFalse(Files.exists(states.resolve(FILE + ".state")));
+
+        append(source, "second line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+        assertTrue(Files.exists(states.resolve(FILE + ".state")));
+
+        append(source, "third line\n");
+        IncrementalDigest reloaded = new IncrementalDigest(states);
+        assertEquals(23, copy(reloaded));
+        assertArrayEquals(sha1(copy), reloaded.digest(FILE, copy));
+    }
+
+    @Test
+    public void copiedWithoutDigestResumes() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        //e.g. the crc was invalid, so the copy was never hashed
+        copy(digest);
+
+        append(source, "second line\n");
+        assertEquals(11, copy(digest));
+        assertArrayEquals(sha1(copy), digest.digest(FILE, copy));
+    }
+
+    @Test
+    public void removeStaleDropsStatesOfMissingFiles() throws Exception {
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+        append(source, "second line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+        Path state = states.resolve(FILE + ".state");
+
+        digest.removeStale(source.getParent(), 60000);
+        assertTrue(Files.exists(state));
+
+        Files.delete(source);
+        digest.removeStale(source.getParent(), 60000);
+        assertFalse(Files.exists(state));
+    }
+
+    @Test
+    public void resumedSignatureMatchesSha1WithRsa() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        IncrementalDigest digest = new IncrementalDigest(states);
+        write(source, "first line\n");
+        copy(digest);
+        digest.digest(FILE, copy);
+        append(source, "second line\n");
+        copy(digest);
+
+        Signature none = Signature.getInstance("NONEwithRSA", "BC");
+        none.initSign(keyPair.getPrivate());
+        none.update(NodeWatcher.SHA1_DIGEST_INFO);
+        none.update(digest.digest(FILE, copy));
+
+        Signature sha1 = Signature.getInstance("SHA1withRSA", "BC");
+        sha1.initSign(keyPair.getPrivate());
+        sha1.update(Files.readAllBytes(copy));
+        assertArrayEquals(sha1.sign(), none.sign());
+    }
+
+    /**
+     * Copies the source the way NodeWatcher does
+     *
+     * @return the offset the copy started from
+     */
+    private long copy(IncrementalDigest digest) throws IOException {
+        long offset = digest.getAppendOffset(FILE, source, copy);
+        try (FileInputStream in = new FileInputStream(source.toFile());
+             FileOutputStream out = new FileOutputStream(copy.toFile(), offset > 0)) {
+            in.getChannel().position(offset);
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        digest.copied(FILE, source, copy);
+        return offset;
+    }
+
+    private static void write(Path path, String contents) throws IOException {
+        Files.write(path, contents.getBytes());
+    }
+
+    private static void append(Path path, String contents) throws IOException {
+        Files.write(path, contents.getBytes(), StandardOpenOption.APPEND);
+    }
+
+    private static byte[] sha1(Path path) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(path));
+    }
+}
@@ -0,0 +1,138 @@
+package gr.headstart.signservice;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the retry and quarantine decisions of the retry scheduler.
+ *
+ * @author KouziaMi
+ */
+public class RetrySchedulerTest {
+
+    /**
+     * Task failing a given number of times, while the file version changes on every attempt
+     * until it becomes stable.
+     */
+    private static class FakeTask implements RetryScheduler.Task {
+        private final SignException.Reason reason;
+        private final int failures;
+        private final int changingVersions;
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final List<String> quarantined = new CopyOnWriteArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean missing;
+
+        private FakeTask(SignException.Reason reason, int failures, int changingVersions) {
+            this.reason = reason;
+            this.failures = failures;
+            this.changingVersions = changingVersions;
+        }
+
+        @Override
+        public void process(String fileName) throws SignException {
+            if (attempts.incrementAndGet() <= failures) {
+                throw new SignException(reason, "failure " + attempts.get());
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void quarantine(String fileName, SignException cause, int attempts) {
+            quarantined.add(fileName);
+            done.countDown();
+        }
+
+        @Override
+        public String getVersion(String fileName) {
+            if (missing) {
+                return null;
+            }
+            return Integer.toString(Math.min(attempts.get(), changingVersions));
+        }
+    }
+
+    @Test
+    public void transientFailureIsRetried() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.TRANSIENT_IO, 2, 0);
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 5, 10, 100);
+        scheduler.submit("a.res");
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.shutdown());
+        assertEquals(3, task.attempts.get());
+        assertTrue(task.quarantined.isEmpty());
+    }
+
+    @Test
+    public void invalidCrcIsRetriedWhileTheFileChanges() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.CRC_INVALID, Integer.MAX_VALUE, 4);
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 2, 10, 100);
+        scheduler.submit("a.res");
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.shutdown());
+        //versions 1, 2, 3 and 4 differ, the fifth attempt sees 4 again
+        assertEquals(5, task.attempts.get());
+        assertEquals(1, task.quarantined.size());
+    }
+
+    @Test
+    public void fileThatNeverSettlesIsQuarantinedAtTheCap() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.TRANSIENT_IO, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 2, 10, 20);
+        scheduler.submit("a.res");
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.shutdown());
+        assertEquals(8, task.attempts.get());
+        assertEquals(1, task.quarantined.size());
+    }
+
+    @Test
+    public void invalidCrcOfAWrittenFileIsNotFatal() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.CRC_INVALID, 1, Integer.MAX_VALUE);
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 5, 10, 100);
+        scheduler.submit("a.res");
+        assertTrue(task.done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.shutdown());
+        assertEquals(2, task.attempts.get());
+        assertTrue(task.quarantined.isEmpty());
+    }
+
+    @Test
+    public void missingFileIsDropped() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.TRANSIENT_IO, Integer.MAX_VALUE, 0);
+        task.missing = true;
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 3, 10, 100);
+        scheduler.submit("a.res");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (task.attempts.get() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertTrue(scheduler.shutdown());
+        assertEquals(1, task.attempts.get());
+        assertTrue(task.quarantined.isEmpty());
+    }
+
+    @Test
+    public void keyErrorIsNeverQuarantined() throws InterruptedException {
+        FakeTask task = new FakeTask(SignException.Reason.KEY_ERROR, Integer.MAX_VALUE, 0);
+        RetryScheduler scheduler = new RetryScheduler(task, 1, 3, 10, 100);
+        scheduler.submit("a.res");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (task.attempts.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertTrue(scheduler.shutdown());
+        assertEquals(3, task.attempts.get());
+        assertTrue(task.quarantined.isEmpty());
+    }
+}
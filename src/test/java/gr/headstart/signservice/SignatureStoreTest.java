@@ -0,0 +1,253 @@
+package gr.headstart.signservice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the signature store: round trip, recovery on startup and compaction.
+ *
+ * @author KouziaMi
+ */
+public class SignatureStoreTest {
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putAndGetRoundTrip() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("a.res", "first"));
+        store.put(entry("b.res", "other"));
+        store.put(entry("a.res", "second"));
+
+        SignatureStore.Entry entry = store.get("a.res");
+        assertEquals("a.res", entry.getFileName());
+        assertEquals(42L, entry.getTimestamp());
+        assertArrayEquals(digest("second"), entry.getDigest());
+        assertArrayEquals("second".getBytes(), entry.getSignature());
+        assertNull(store.get("missing.res"));
+        store.close();
+
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertArrayEquals("second".getBytes(), store.get("a.res").getSignature());
+        assertArrayEquals("other".getBytes(), store.get("b.res").getSignature());
+        store.close();
+    }
+
+    @Test
+    public void removeSurvivesReload() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("a.res", "first"));
+        store.remove("a.res");
+        assertNull(store.get("a.res"));
+        store.close();
+
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertNull(store.get("a.res"));
+        store.close();
+    }
+
+    @Test
+    public void reloadTruncatesTornTailOfActiveSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("a.res", "first"));
+        store.close();
+        Path segment = segments(directory).get(0);
+        long length = Files.size(segment);
+        try (FileOutputStream out = new FileOutputStream(segment.toFile(), true)) {
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 5});
+        }
+
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertEquals(length, Files.size(segment));
+        assertArrayEquals("first".getBytes(), store.get("a.res").getSignature());
+        store.put(entry("b.res", "after"));
+        store.close();
+
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertArrayEquals("after".getBytes(), store.get("b.res").getSignature());
+        store.close();
+    }
+
+    @Test
+    public void reloadSkipsCorruptedRecordOfSealedSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("a.res", "first"));
+        store.put(entry("b.res", "second"));
+        store.put(entry("c.res", "third"));
+        store.compact();
+        store.put(entry("d.res", "fourth"));
+        store.close();
+
+        //flip the last byte of the first record
+        Path sealed = segments(directory).get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(sealed.toFile(), "rw")) {
+            long offset = 4 + 4 + raf.readInt() - 1;
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xff);
+        }
+
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertNull(store.get("a.res"));
+        assertArrayEquals("second".getBytes(), store.get("b.res").getSignature());
+        assertArrayEquals("third".getBytes(), store.get("c.res").getSignature());
+        assertArrayEquals("fourth".getBytes(), store.get("d.res").getSignature());
+        store.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void reloadFailsOnTornSealedSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("a.res", "first"));
+        store.compact();
+        store.put(entry("b.res", "second"));
+        store.close();
+        Path sealed = segments(directory).get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(sealed.toFile(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        new SignatureStore(directory, SEGMENT_SIZE);
+    }
+
+    @Test
+    public void compactionKeepsOnlyLatestRecords() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, 256);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 5; i++) {
+                store.put(entry("f" + i + ".res", "sig" + i + "-" + round));
+            }
+        }
+        store.compact();
+        List<Path> segments = segments(directory);
+        //the compacted segment and the new active one
+        assertEquals(2, segments.size());
+        assertEquals(0, Files.size(segments.get(1)));
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(("sig" + i + "-19").getBytes(), store.get("f" + i + ".res").getSignature());
+        }
+        store.close();
+
+        store = new SignatureStore(directory, 256);
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(("sig" + i + "-19").getBytes(), store.get("f" + i + ".res").getSignature());
+        }
+        store.close();
+    }
+
+    @Test
+    public void appendsCompactInTheBackground() throws IOException, InterruptedException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, 256);
+        for (int round = 0; round < 40; round++) {
+            for (int i = 0; i < 5; i++) {
+                store.put(entry("f" + i + ".res", "sig" + i + "-" + round));
+            }
+            store.remove("f4.res");
+            for (int i = 0; i < 4; i++) {
+                assertArrayEquals(("sig" + i + "-" + round).getBytes(), store.get("f" + i + ".res").getSignature());
+            }
+        }
+        //without compaction every roll would leave a segment behind
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segments(directory).size() >= 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(segments(directory).size() < 10);
+        store.close();
+
+        store = new SignatureStore(directory, 256);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(("sig" + i + "-39").getBytes(), store.get("f" + i + ".res").getSignature());
+        }
+        assertNull(store.get("f4.res"));
+        store.close();
+    }
+
+    @Test
+    public void compactionKeepsTombstonesWhileOlderSegmentsMayRemain() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        SignatureStore store = new SignatureStore(directory, SEGMENT_SIZE);
+        store.put(entry("b.res", "first"));
+        store.compact();
+        Path oldest = segments(directory).get(0);
+        byte[] oldestContents = Files.readAllBytes(oldest);
+        store.remove("b.res");
+        store.compact();
+        store.close();
+
+        //as if the service crashed before the old segment was deleted
+        Files.write(oldest, oldestContents);
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertNull(store.get("b.res"));
+
+        //once the tombstone is in the oldest segment it can go
+        store.compact();
+        store.compact();
+        store.close();
+        store = new SignatureStore(directory, SEGMENT_SIZE);
+        assertNull(store.get("b.res"));
+        store.put(entry("b.res", "again"));
+        assertNotNull(store.get("b.res"));
+        store.close();
+    }
+
+    @Test
+    public void closedStoreRejectsAppends() throws IOException {
+        SignatureStore store = new SignatureStore(folder.getRoot().toPath(), SEGMENT_SIZE);
+        store.close();
+        try {
+            store.put(entry("a.res", "first"));
+            fail("Appending to a closed store must fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static SignatureStore.Entry entry(String fileName, String signature) {
+        return new SignatureStore.Entry(fileName, 42L, digest(signature), signature.getBytes());
+    }
+
+    private static byte[] digest(String signature) {
+        byte[] digest = new byte[20];
+        digest[0] = (byte) signature.hashCode();
+        return digest;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "signatures-*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}